@@ -0,0 +1,735 @@
+package dns;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class collecting fixed-memory analytics about the questions the server receives.
+ *
+ * Every question is fed into a count-min sketch (frequencies), two space-saving
+ * summaries (top name/type pairs and top client prefixes) and two HyperLogLog
+ * counters (unique names and unique clients). Memory use does not grow with traffic,
+ * and recording a question does not build any strings.
+ *
+ * An instance is meant to be owned by a single thread; there are no locks.
+ * A multi-threaded server can keep one instance per worker thread and have a
+ * publisher drain each of them into a shared instance with drainInto(), then
+ * call publishIfDue() on that shared instance only. merge() and drainInto() read
+ * the source's arrays without synchronisation, so the source's thread must be
+ * paused (or hand its instance over) while it is being merged.
+ *
+ * main() is only a self-check of the sketch guarantees, run by "make check";
+ * it is not an entry point for the server.
+ *
+ * @version 1.0
+ */
+public class DNSQueryStats {
+
+    /**
+     * number of hash rows in the count-min sketch
+     */
+    final private static int CMS_DEPTH = 4;
+
+    /**
+     * number of counters per count-min row; must be a power of two
+     */
+    final private static int CMS_WIDTH = 1 << 14;
+
+    /**
+     * number of entries kept by each space-saving summary
+     */
+    final private static int TOP_K = 32;
+
+    /**
+     * number of index bits for the HyperLogLog counters (2^14 one-byte registers each)
+     */
+    final private static int HLL_PRECISION = 14;
+
+    /**
+     * number of entries printed per top list in a snapshot
+     */
+    final private static int REPORT_SIZE = 10;
+
+    // constants for the 64-bit FNV-1a hash
+    final private static long FNV_OFFSET = 0xcbf29ce484222325L;
+    final private static long FNV_PRIME = 0x100000001b3L;
+
+    // how often (in nanoseconds) a snapshot should be published
+    private long interval_ns;
+    private long window_start_ns;
+
+    // total number of questions seen in the current window
+    private long total;
+
+    private CountMinSketch name_counts;
+    private SpaceSaving top_names;
+    private SpaceSaving top_clients;
+    private HyperLogLog unique_names;
+    private HyperLogLog unique_clients;
+
+    /**
+     * constructor to make an empty set of query statistics
+     *
+     * @param interval_ms   how often, in milliseconds, publishIfDue() should print a snapshot
+     */
+    public DNSQueryStats(long interval_ms) {
+        this.interval_ns = TimeUnit.MILLISECONDS.toNanos(interval_ms);
+        this.window_start_ns = System.nanoTime();
+        name_counts = new CountMinSketch(CMS_DEPTH, CMS_WIDTH);
+        top_names = new SpaceSaving(TOP_K);
+        top_clients = new SpaceSaving(TOP_K);
+        unique_names = new HyperLogLog(HLL_PRECISION);
+        unique_clients = new HyperLogLog(HLL_PRECISION);
+    }
+
+    /**
+     * record a single question
+     *
+     * @param   name    the hostname in the question section
+     * @param   type    the record type, as a string, in the question section
+     * @param   client  the address the request came from
+     */
+    public void record(String name, String type, InetAddress client) {
+        // a request without a question has nothing worth counting
+        if(name == null) {
+            return;
+        }
+
+        long name_state = hashChars(FNV_OFFSET, name);
+        long key_hash = keyHash(name_state, type);
+
+        total++;
+        name_counts.add(key_hash);
+        top_names.add(key_hash, name, type);
+        unique_names.add(mix(name_state));
+
+        // an Inet4Address's hash code is its address as an int, which avoids getAddress() copying a byte[]
+        if(client instanceof Inet4Address) {
+            int ip = client.hashCode();
+            unique_clients.add(mix((4L << 32) | (ip & 0xffffffffL)));
+            top_clients.add((4L << 24) | (ip >>> 8), null, null);
+        } else {
+            byte[] addr = client.getAddress();
+            unique_clients.add(mix(hashBytes(FNV_OFFSET, addr)));
+            top_clients.add(prefixKey(addr), null, null);
+        }
+    }
+
+    /**
+     * fold the counts of another instance into this one; the merged window starts at the earlier of the two
+     *
+     * @param other another DNSQueryStats; it is left unchanged, and its thread must not record meanwhile
+     */
+    public void merge(DNSQueryStats other) {
+        if(other.window_start_ns - window_start_ns < 0) {
+            window_start_ns = other.window_start_ns;
+        }
+        total += other.total;
+        name_counts.merge(other.name_counts);
+        top_names.merge(other.top_names);
+        top_clients.merge(other.top_clients);
+        unique_names.merge(other.unique_names);
+        unique_clients.merge(other.unique_clients);
+    }
+
+    /**
+     * fold this instance's counts into another one, then clear this instance and start a new window
+     *
+     * @param target    the instance that will publish the combined counts
+     */
+    public void drainInto(DNSQueryStats target) {
+        target.merge(this);
+        reset(System.nanoTime());
+    }
+
+    /**
+     * print a snapshot and start a new window if the publish interval has passed
+     *
+     * @param   now_ns  the current time from System.nanoTime()
+     * @return          true if a snapshot was printed
+     */
+    public boolean publishIfDue(long now_ns) {
+        if(now_ns - window_start_ns < interval_ns) {
+            return false;
+        }
+
+        System.out.print(snapshot(now_ns));
+        reset(now_ns);
+        return true;
+    }
+
+    /**
+     * build a report of the current window
+     *
+     * @param   now_ns  the current time from System.nanoTime(), used to compute the query rate
+     * @return          the String version of the current window
+     */
+    public String snapshot(long now_ns) {
+        var sb = new StringBuilder();
+        double seconds = Math.max(now_ns - window_start_ns, 1) / 1e9;
+
+        sb.append(String.format("Query stats for the last %.1f seconds:%n", seconds));
+        sb.append(String.format("# Questions: %d (%.1f/s)%n", total, total / seconds));
+        sb.append(String.format("# Unique names: ~%d%n", unique_names.estimate()));
+        sb.append(String.format("# Unique clients: ~%d%n", unique_clients.estimate()));
+
+        // the count-min estimate is usually tighter than the space-saving one for recently evicted keys
+        var names = top_names.top(TOP_K);
+        for(var e : names) {
+            e.count = Math.min(e.count, name_counts.estimate(e.key));
+        }
+        names.sort((a, b) -> Long.compare(b.count, a.count));
+
+        sb.append(String.format("Top names:%n"));
+        for(var e : names.subList(0, Math.min(REPORT_SIZE, names.size()))) {
+            sb.append(String.format("- %s, %s, %d%n", lowerAscii(e.name), e.type, e.count));
+        }
+
+        sb.append(String.format("Top client prefixes:%n"));
+        for(var e : top_clients.top(REPORT_SIZE)) {
+            sb.append(String.format("- %s, %d%n", prefixLabel(e.key), e.count));
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * clear every sketch and start a new window
+     *
+     * @param now_ns the start time of the new window
+     */
+    private void reset(long now_ns) {
+        window_start_ns = now_ns;
+        total = 0;
+        name_counts.clear();
+        top_names.clear();
+        top_clients.clear();
+        unique_names.clear();
+        unique_clients.clear();
+    }
+
+    /**
+     * utility method to pack a client's network into a long: a /24 for IPv4 and a /48 for IPv6
+     *
+     * @param   addr    the raw client address
+     * @return          the address family in the top bits and the prefix bits below it
+     */
+    private static long prefixKey(byte[] addr) {
+        int len = addr.length == 4 ? 3 : 6;
+        long key = addr.length;
+        for(int i = 0; i < len; i++) {
+            key = (key << 8) | (addr[i] & 0xff);
+        }
+        return key;
+    }
+
+    /**
+     * utility method to turn a key from prefixKey() back into CIDR notation
+     *
+     * @param   key     the packed prefix
+     * @return          the prefix in CIDR notation
+     */
+    private static String prefixLabel(long key) {
+        if((key >>> 24) == 4) {
+            return String.format("%d.%d.%d.0/24", key >> 16 & 0xff, key >> 8 & 0xff, key & 0xff);
+        }
+        return String.format("%x:%x:%x::/48", key >> 32 & 0xffff, key >> 16 & 0xffff, key & 0xffff);
+    }
+
+    /**
+     * utility method to lower-case ASCII letters only, since DNS names compare case-insensitively for ASCII alone
+     *
+     * @param   s   the string to fold
+     * @return      s with A-Z replaced by a-z
+     */
+    private static String lowerAscii(String s) {
+        var sb = new StringBuilder(s.length());
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            sb.append(c >= 'A' && c <= 'Z' ? (char)(c + 32) : c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * utility method to continue an FNV-1a hash over the chars of a string, folding ASCII case
+     *
+     * @param   h   the hash state so far
+     * @param   s   the string to hash
+     * @return      the new hash state
+     */
+    private static long hashChars(long h, String s) {
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if(c >= 'A' && c <= 'Z') {
+                c += 32;
+            }
+            h ^= c;
+            h *= FNV_PRIME;
+        }
+        return h;
+    }
+
+    /**
+     * utility method to continue an FNV-1a hash over some bytes
+     *
+     * @param   h       the hash state so far
+     * @param   bytes   the bytes to hash
+     * @return          the new hash state
+     */
+    private static long hashBytes(long h, byte[] bytes) {
+        for(byte b : bytes) {
+            h ^= b & 0xff;
+            h *= FNV_PRIME;
+        }
+        return h;
+    }
+
+    /**
+     * utility method to hash a name/type pair, given the FNV state after hashing the name
+     *
+     * @param   name_state  the result of hashChars() over the name
+     * @param   type        the record type
+     * @return              the 64-bit hash of the pair
+     */
+    private static long keyHash(long name_state, String type) {
+        // a space separates the name from the type, the same as "name type"
+        long h = (name_state ^ ' ') * FNV_PRIME;
+        return mix(hashChars(h, type));
+    }
+
+    /**
+     * utility method to spread an FNV state over all 64 bits (the splitmix64 finalizer)
+     *
+     * @param   h   the value to mix
+     * @return      the mixed value
+     */
+    private static long mix(long h) {
+        h ^= h >>> 30;
+        h *= 0xbf58476d1ce4e5b9L;
+        h ^= h >>> 27;
+        h *= 0x94d049bb133111ebL;
+        h ^= h >>> 31;
+        return h;
+    }
+
+    /**
+     * Count-min sketch: a depth x width table of counters that overestimates frequencies by a bounded amount.
+     */
+    private static class CountMinSketch {
+        private int depth;
+        private int mask;
+        private long[][] table;
+
+        CountMinSketch(int depth, int width) {
+            this.depth = depth;
+            this.mask = width - 1;
+            table = new long[depth][width];
+        }
+
+        // derive one column per row from the two halves of the hash (Kirsch-Mitzenmacher)
+        private int column(long h, int row) {
+            int h1 = (int)h;
+            int h2 = (int)(h >>> 32);
+            return (h1 + row * h2) & mask;
+        }
+
+        void add(long h) {
+            for(int row = 0; row < depth; row++) {
+                table[row][column(h, row)]++;
+            }
+        }
+
+        long estimate(long h) {
+            long min = Long.MAX_VALUE;
+            for(int row = 0; row < depth; row++) {
+                min = Math.min(min, table[row][column(h, row)]);
+            }
+            return min;
+        }
+
+        void merge(CountMinSketch other) {
+            for(int row = 0; row < depth; row++) {
+                for(int col = 0; col <= mask; col++) {
+                    table[row][col] += other.table[row][col];
+                }
+            }
+        }
+
+        void clear() {
+            for(long[] row : table) {
+                Arrays.fill(row, 0);
+            }
+        }
+    }
+
+    /**
+     * A copy of a single entry in a space-saving summary.
+     */
+    private static class Counter {
+        private long key;
+        private long count;
+        private long error;
+        private String name;
+        private String type;
+
+        Counter(long key, long count, long error, String name, String type) {
+            this.key = key;
+            this.count = count;
+            this.error = error;
+            this.name = name;
+            this.type = type;
+        }
+    }
+
+    /**
+     * Space-saving summary: keeps the k heaviest keys, replacing the smallest entry when a new key arrives.
+     *
+     * Entries live in fixed slots. An open-addressing table finds the slot for a key and a
+     * min-heap over the slots finds the smallest entry, so add() is O(log k) and never allocates.
+     */
+    private static class SpaceSaving {
+        private int capacity;
+        private int size;
+
+        // per-slot entry data; name and type are only kept so a report can print them
+        private long[] keys;
+        private long[] counts;
+        private long[] errors;
+        private String[] names;
+        private String[] types;
+
+        // slots ordered as a min-heap by count, and each slot's position in that heap
+        private int[] heap;
+        private int[] heap_pos;
+
+        // linear-probing table holding slot + 1, or 0 when empty
+        private int[] table;
+        private int table_mask;
+
+        SpaceSaving(int capacity) {
+            this.capacity = capacity;
+            keys = new long[capacity];
+            counts = new long[capacity];
+            errors = new long[capacity];
+            names = new String[capacity];
+            types = new String[capacity];
+            heap = new int[capacity];
+            heap_pos = new int[capacity];
+            table = new int[Integer.highestOneBit(capacity) * 4];
+            table_mask = table.length - 1;
+        }
+
+        void add(long key, String name, String type) {
+            int slot = find(key);
+            if(slot >= 0) {
+                counts[slot]++;
+                siftDown(heap_pos[slot]);
+                return;
+            }
+
+            if(size < capacity) {
+                insert(key, 1, 0, name, type);
+                return;
+            }
+
+            // replace the smallest entry; the newcomer inherits its count as possible overestimate
+            slot = heap[0];
+            unindex(keys[slot]);
+            errors[slot] = counts[slot];
+            counts[slot]++;
+            keys[slot] = key;
+            names[slot] = name;
+            types[slot] = type;
+            index(key, slot);
+            siftDown(0);
+        }
+
+        /**
+         * combine another summary into this one (the mergeable space-saving combine)
+         *
+         * A key missing from a full summary may have been seen up to that summary's minimum
+         * count times, so it is charged that minimum. Keys only on one side never evict anything;
+         * the top k of the union are kept afterwards.
+         */
+        void merge(SpaceSaving other) {
+            long min = min();
+            long other_min = other.min();
+            var union = new ArrayList<Counter>();
+
+            for(int s = 0; s < size; s++) {
+                int o = other.find(keys[s]);
+                if(o >= 0) {
+                    union.add(new Counter(keys[s], counts[s] + other.counts[o], errors[s] + other.errors[o], names[s], types[s]));
+                } else {
+                    union.add(new Counter(keys[s], counts[s] + other_min, errors[s] + other_min, names[s], types[s]));
+                }
+            }
+            for(int o = 0; o < other.size; o++) {
+                if(find(other.keys[o]) < 0) {
+                    union.add(new Counter(other.keys[o], other.counts[o] + min, other.errors[o] + min, other.names[o], other.types[o]));
+                }
+            }
+
+            union.sort((a, b) -> Long.compare(b.count, a.count));
+            clear();
+            for(var e : union.subList(0, Math.min(capacity, union.size()))) {
+                insert(e.key, e.count, e.error, e.name, e.type);
+            }
+        }
+
+        // the most times an untracked key can have been seen: 0 until the summary has had to evict
+        long min() {
+            return size < capacity ? 0 : counts[heap[0]];
+        }
+
+        List<Counter> top(int n) {
+            var list = new ArrayList<Counter>();
+            for(int s = 0; s < size; s++) {
+                list.add(new Counter(keys[s], counts[s], errors[s], names[s], types[s]));
+            }
+            list.sort((a, b) -> Long.compare(b.count, a.count));
+            return new ArrayList<Counter>(list.subList(0, Math.min(n, list.size())));
+        }
+
+        void clear() {
+            size = 0;
+            Arrays.fill(table, 0);
+            Arrays.fill(names, null);
+            Arrays.fill(types, null);
+        }
+
+        private void insert(long key, long count, long error, String name, String type) {
+            int slot = size++;
+            keys[slot] = key;
+            counts[slot] = count;
+            errors[slot] = error;
+            names[slot] = name;
+            types[slot] = type;
+            index(key, slot);
+            heap[slot] = slot;
+            heap_pos[slot] = slot;
+            siftUp(slot);
+        }
+
+        private int home(long key) {
+            return (int)mix(key) & table_mask;
+        }
+
+        private int find(long key) {
+            for(int i = home(key); table[i] != 0; i = (i + 1) & table_mask) {
+                if(keys[table[i] - 1] == key) {
+                    return table[i] - 1;
+                }
+            }
+            return -1;
+        }
+
+        private void index(long key, int slot) {
+            int i = home(key);
+            while(table[i] != 0) {
+                i = (i + 1) & table_mask;
+            }
+            table[i] = slot + 1;
+        }
+
+        // remove a key from the table, shifting later entries back so probing still finds them
+        private void unindex(long key) {
+            int i = home(key);
+            while(keys[table[i] - 1] != key) {
+                i = (i + 1) & table_mask;
+            }
+            table[i] = 0;
+
+            for(int j = (i + 1) & table_mask; table[j] != 0; j = (j + 1) & table_mask) {
+                int k = home(keys[table[j] - 1]);
+                boolean stays = i < j ? (i < k && k <= j) : (i < k || k <= j);
+                if(!stays) {
+                    table[i] = table[j];
+                    table[j] = 0;
+                    i = j;
+                }
+            }
+        }
+
+        private void siftUp(int pos) {
+            while(pos > 0) {
+                int parent = (pos - 1) / 2;
+                if(counts[heap[parent]] <= counts[heap[pos]]) {
+                    break;
+                }
+                swap(pos, parent);
+                pos = parent;
+            }
+        }
+
+        private void siftDown(int pos) {
+            while(true) {
+                int smallest = pos;
+                int left = 2 * pos + 1;
+                int right = left + 1;
+                if(left < size && counts[heap[left]] < counts[heap[smallest]]) {
+                    smallest = left;
+                }
+                if(right < size && counts[heap[right]] < counts[heap[smallest]]) {
+                    smallest = right;
+                }
+                if(smallest == pos) {
+                    return;
+                }
+                swap(pos, smallest);
+                pos = smallest;
+            }
+        }
+
+        private void swap(int a, int b) {
+            int t = heap[a];
+            heap[a] = heap[b];
+            heap[b] = t;
+            heap_pos[heap[a]] = a;
+            heap_pos[heap[b]] = b;
+        }
+    }
+
+    /**
+     * HyperLogLog: estimates the number of distinct hashes seen using one byte per register.
+     */
+    private static class HyperLogLog {
+        private int precision;
+        private byte[] registers;
+
+        HyperLogLog(int precision) {
+            this.precision = precision;
+            registers = new byte[1 << precision];
+        }
+
+        void add(long h) {
+            int index = (int)(h >>> (64 - precision));
+            // rank is the position of the first 1 bit in the remaining bits, capped if they are all zero
+            int rank = Long.numberOfLeadingZeros((h << precision) | (1L << (precision - 1))) + 1;
+            if(rank > registers[index]) {
+                registers[index] = (byte)rank;
+            }
+        }
+
+        long estimate() {
+            int m = registers.length;
+            double sum = 0;
+            int zeros = 0;
+            for(byte r : registers) {
+                sum += 1.0 / (1L << r);
+                if(r == 0) {
+                    zeros++;
+                }
+            }
+
+            double alpha = 0.7213 / (1 + 1.079 / m);
+            double estimate = alpha * m * m / sum;
+
+            // fall back to linear counting while many registers are still empty
+            if(estimate <= 2.5 * m && zeros > 0) {
+                estimate = m * Math.log((double)m / zeros);
+            }
+            return Math.round(estimate);
+        }
+
+        void merge(HyperLogLog other) {
+            for(int i = 0; i < registers.length; i++) {
+                registers[i] = (byte)Math.max(registers[i], other.registers[i]);
+            }
+        }
+
+        void clear() {
+            Arrays.fill(registers, (byte)0);
+        }
+    }
+
+    /**
+     * utility method to report one self-check result
+     *
+     * @param   ok      whether the check passed
+     * @param   what    a description of the check
+     * @return          ok, so results can be combined
+     */
+    private static boolean check(boolean ok, String what) {
+        System.out.printf("%s: %s%n", ok ? "PASS" : "FAIL", what);
+        return ok;
+    }
+
+    /**
+     * Self-check of drainInto() and the sketch guarantees: count-min never underestimates, space-saving
+     * keeps heavy keys and upper bounds across a merge, and HyperLogLog stays within its error band.
+     *
+     * @param args unused
+     */
+    public static void main(String[] args) {
+        var rand = new Random(3363);
+        var client = InetAddress.getLoopbackAddress();
+        boolean ok = true;
+
+        // two skewed streams recorded into separate instances, as two threads would
+        var a = new DNSQueryStats(1000);
+        var b = new DNSQueryStats(1000);
+        var exact = new HashMap<String, Long>();
+        for(int i = 0; i < 200000; i++) {
+            var name = "Host" + (int)(5000 * Math.pow(rand.nextDouble(), 4)) + ".example.com";
+            (i % 2 == 0 ? a : b).record(name, "A", client);
+            exact.merge(lowerAscii(name), 1L, Long::sum);
+        }
+        b.window_start_ns = a.window_start_ns - 1000;
+        var start = b.window_start_ns;
+        b.drainInto(a);
+        ok &= check(b.total == 0 && b.top_names.size == 0 && b.unique_names.estimate() == 0, "drainInto clears the source");
+        ok &= check(a.total == 200000 && a.window_start_ns == start, "drainInto keeps every question and the earlier window start");
+
+        boolean over = true;
+        for(var e : exact.entrySet()) {
+            long key = keyHash(hashChars(FNV_OFFSET, e.getKey()), "A");
+            over &= a.name_counts.estimate(key) >= e.getValue();
+        }
+        ok &= check(over, "count-min never underestimates a name");
+
+        boolean upper = true;
+        for(var e : a.top_names.top(TOP_K)) {
+            upper &= e.count >= exact.get(lowerAscii(e.name));
+        }
+        ok &= check(upper, "merged space-saving counts are upper bounds");
+
+        var heaviest = exact.entrySet().stream().max((x, y) -> Long.compare(x.getValue(), y.getValue())).get().getKey();
+        ok &= check(lowerAscii(a.top_names.top(1).get(0).name).equals(heaviest), "merged space-saving ranks the heaviest name first");
+
+        // a full summary of light keys must not push out a full summary of heavy keys
+        var heavy = new DNSQueryStats(1000);
+        var noise = new DNSQueryStats(1000);
+        for(int i = 0; i < TOP_K; i++) {
+            for(int j = 0; j < 100; j++) {
+                heavy.record("heavy" + i, "A", client);
+            }
+            noise.record("noise" + i, "A", client);
+        }
+        heavy.merge(noise);
+        boolean kept = true;
+        for(var e : heavy.top_names.top(TOP_K)) {
+            kept &= e.name.startsWith("heavy") && e.count >= 100;
+        }
+        ok &= check(kept, "merge keeps heavy keys over light keys");
+
+        // the standard error with 2^14 registers is about 0.8%, so 3% is a wide band
+        var hll = new HyperLogLog(HLL_PRECISION);
+        int distinct = 1000000;
+        // start at 1 because mix() maps 0 to 0
+        for(int i = 1; i <= distinct; i++) {
+            hll.add(mix(i));
+        }
+        double err = Math.abs(hll.estimate() - distinct) / (double)distinct;
+        ok &= check(err < 0.03, String.format("HyperLogLog error %.2f%% is within 3%%", err * 100));
+
+        System.exit(ok ? 0 : 1);
+    }
+}
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.SocketTimeoutException;
 
 /**
  * Class representing a DNS Server.
@@ -22,18 +23,50 @@ public class DNSServer {
      */
     final private int MAX_SIZE = 1400;
 
+    /**
+     * publish a query statistics snapshot every 10 seconds
+     */
+    final private long STATS_INTERVAL_MS = 10000;
+
+    /**
+     * stop waiting for a packet after 1 second so snapshots are still published while idle
+     */
+    final private int RECEIVE_TIMEOUT_MS = 1000;
+
     /**
      * this server will handle requests for a single zone/domain
      */
     private DNSZone zone;
 
+    /**
+     * fixed-memory analytics about the questions this server receives
+     */
+    private DNSQueryStats stats;
+
+    /**
+     * print every request and response; off by default so the stats snapshots are the record of traffic
+     */
+    private boolean verbose;
+
     /**
      * Required constructor that simply prints out some messages about the server.
      *
      * @param zone a DNSZone object that has already been constructed
      */
     public DNSServer(DNSZone zone) {
+        this(zone, false);
+    }
+
+    /**
+     * constructor that also chooses whether every message is printed
+     *
+     * @param zone      a DNSZone object that has already been constructed
+     * @param verbose   true to print every request and response message
+     */
+    public DNSServer(DNSZone zone, boolean verbose) {
         this.zone = zone;
+        this.verbose = verbose;
+        this.stats = new DNSQueryStats(STATS_INTERVAL_MS);
 
         System.out.printf("Starting server on port %d%n", PORT);
         System.out.printf("Using default TTL %d seconds%n", zone.getTTL());
@@ -50,7 +83,12 @@ public class DNSServer {
         var requestMessage = new DNSMessage(requestPkt);
 
         // print the request message contents
-        System.out.println(requestMessage);
+        if(verbose) {
+            System.out.println(requestMessage);
+        }
+
+        // feed the question into the analytics sketches
+        stats.record(requestMessage.getQuestionName(), requestMessage.getQuestionType(), requestPkt.getAddress());
 
         // look for the records in our zone
         var ip = zone.getRecord(requestMessage.getQuestionName(), requestMessage.getQuestionType(), requestMessage.getQuestionClass());
@@ -59,7 +97,9 @@ public class DNSServer {
         var responseMessage = new DNSMessage(requestMessage, ip, zone.getTTL());
 
         // print the response message contents
-        System.out.println(responseMessage);
+        if(verbose) {
+            System.out.println(responseMessage);
+        }
 
         // make and return a response packet
         return new DatagramPacket(responseMessage.getData(), responseMessage.getDataLength(), requestPkt.getSocketAddress());
@@ -74,21 +114,33 @@ public class DNSServer {
             // listen on localhost only
             var sock = new DatagramSocket(PORT, InetAddress.getLoopbackAddress());
         ) {
+            sock.setSoTimeout(RECEIVE_TIMEOUT_MS);
+
             // keep reading packets one at a time, forever
             while(true) {
                 // packet to store the incoming message
                 var in_packet = new DatagramPacket(new byte[MAX_SIZE], MAX_SIZE);
 
-                // blocking call, read one packet
-                sock.receive(in_packet);
+                // blocking call, read one packet; on timeout just check whether stats are due
+                try {
+                    sock.receive(in_packet);
+                } catch(SocketTimeoutException e) {
+                    stats.publishIfDue(System.nanoTime());
+                    continue;
+                }
 
-                System.out.println("Request received from " + in_packet.getSocketAddress());
+                if(verbose) {
+                    System.out.println("Request received from " + in_packet.getSocketAddress());
+                }
 
                 // handle this packet; given the request packet, will return a response packet
                 var out_packet = handleMessage(in_packet);
 
                 // send the response
                 sock.send(out_packet);
+
+                // print the query statistics if the current window is over
+                stats.publishIfDue(System.nanoTime());
             }
         } catch(IOException e) {
             // Have to catch IOexceptions for most socket calls
@@ -99,20 +151,21 @@ public class DNSServer {
     /**
      * Server starting point
      *
-     * @param args should contain a single value, the filename of the zone file
+     * @param args the filename of the zone file, optionally preceded by -v to print every message
      */
     public static void main(String[] args) {
-        // must have exactly a single command line argument
-        if(args.length != 1) {
-            System.out.println("Usage: sudo java dns.DNSServer zone_file");
+        // must have the zone file, optionally preceded by the verbose flag
+        var verbose = args.length == 2 && args[0].equals("-v");
+        if(args.length != 1 && !verbose) {
+            System.out.println("Usage: sudo java dns.DNSServer [-v] zone_file");
             System.exit(0);
         }
 
         // make the zone, which will exit() if the file is invalid in any way
-        var zone = new DNSZone(args[0]);
+        var zone = new DNSZone(args[args.length - 1]);
 
         // make the server object then start listening for DNS requests
-        var server = new DNSServer(zone);
+        var server = new DNSServer(zone, verbose);
         server.run();
     }
 }